@@ -15,7 +15,11 @@
  */
 package net.shipilev.dedup;
 
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Counters {
 
@@ -29,4 +33,88 @@ public class Counters {
     public final AtomicLong dedupData = new AtomicLong();
     public final AtomicLong dedupCompressData = new AtomicLong();
 
+    // Bumped for every unique block, hence the adder: avoids contention on the hot path.
+    public final LongAdder uniqueBlocks = new LongAdder();
+
+    // Time spent in pipeline stages, only collected with Main.TIMINGS.
+    public final LongAdder readNanos = new LongAdder();
+    public final LongAdder compressNanos = new LongAdder();
+    public final LongAdder hashNanos = new LongAdder();
+    public final LongAdder storeNanos = new LongAdder();
+
+    private final Path root;
+    private final int subtreeDepth;
+    private final ConcurrentHashMap<String, Subtree> subtrees = new ConcurrentHashMap<>();
+
+    public Counters(Path root, int subtreeDepth) {
+        this.root = root;
+        this.subtreeDepth = subtreeDepth;
+    }
+
+    /**
+     * Finds the subtree the file belongs to: the directory at most subtreeDepth levels under the root.
+     * Its parents up to the root are created along the way, so that the updates roll up to them.
+     *
+     * @param file file to look up
+     * @return subtree counters, or null if subtrees are not tracked
+     */
+    public Subtree subtree(Path file) {
+        if (subtreeDepth <= 0) {
+            return null;
+        }
+
+        Path rel = root.relativize(file);
+        int dirs = Math.min(subtreeDepth, rel.getNameCount() - 1);
+        Subtree subtree = subtrees.computeIfAbsent(".", name -> new Subtree(name, null));
+        for (int d = 1; d <= dirs; d++) {
+            Subtree parent = subtree;
+            String name = rel.subpath(0, d).toString().replace('\\', '/');
+            subtree = subtrees.computeIfAbsent(name, n -> new Subtree(n, parent));
+        }
+        return subtree;
+    }
+
+    public Collection<Subtree> subtrees() {
+        return subtrees.values();
+    }
+
+    public void fileProcessed(Subtree subtree) {
+        processedFiles.incrementAndGet();
+        for (Subtree s = subtree; s != null; s = s.parent) {
+            s.files.increment();
+        }
+    }
+
+    /**
+     * Per-subtree counters. These are updated from many threads, but read rarely, hence adders.
+     * Every subtree includes the files in all its subdirectories, with "." being the root.
+     * Unique data is attributed to the subtree where the block was seen first.
+     */
+    public static class Subtree {
+        public final String name;
+        private final Subtree parent;
+        public final LongAdder files = new LongAdder();
+        public final LongAdder inputData = new LongAdder();
+        public final LongAdder compressedData = new LongAdder();
+        public final LongAdder dedupData = new LongAdder();
+        public final LongAdder dedupCompressData = new LongAdder();
+
+        Subtree(String name, Subtree parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        /**
+         * Accounts the data in this subtree and all its parents.
+         */
+        public void add(long input, long compressed, long dedup, long dedupCompress) {
+            for (Subtree s = this; s != null; s = s.parent) {
+                s.inputData.add(input);
+                s.compressedData.add(compressed);
+                s.dedupData.add(dedup);
+                s.dedupCompressData.add(dedupCompress);
+            }
+        }
+    }
+
 }
@@ -18,6 +18,8 @@ package net.shipilev.dedup;
 import net.shipilev.dedup.storage.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
@@ -29,17 +31,30 @@ public class Main {
     static final String HASH = System.getProperty("hash", "SHA-256");
     static final int BLOCK_SIZE = Integer.getInteger("blockSize", 128);
     static final int THREADS = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    static final int RUN_SIZE = Integer.getInteger("runSize", 1 << 18);
+    static final int SPLIT_SIZE = Integer.getInteger("splitSize", 0);
     static final long POLL_INTERVAL_SEC = Integer.getInteger("pollInterval", 1);
+    static final int SUBTREE_DEPTH = Integer.getInteger("subtreeDepth", 0);
+    static final String REPORT = System.getProperty("report", "");
+    static final String REPORT_FILE = System.getProperty("reportFile", "dedup-report." + REPORT);
+    static final int METRICS_PORT = Integer.getInteger("metricsPort", 0);
+    static final boolean TIMINGS = METRICS_PORT > 0;
 
     static final boolean DO_COMPRESS = Boolean.parseBoolean(System.getProperty("doCompress", "true"));
     static final boolean DO_DEDUP = Boolean.parseBoolean(System.getProperty("doDedup", "true"));
+    static final boolean SCAN_ARCHIVES = Boolean.parseBoolean(System.getProperty("scanArchives", "false"));
 
-    private final Counters counters = new Counters();
+    // Typical dedup table entry sizes: compact on-disk, and in-core ones for ZFS.
+    static final int[] DDT_ENTRY_SIZES = {64, 192, 320};
+
+    private Counters counters;
 
     private HashStorage hashes;
 
     private long firstPoll;
 
+    private volatile boolean finished;
+
     public static void main(String[] args) {
         String path = ".";
         if (args.length > 0) {
@@ -63,12 +78,22 @@ public class Main {
             case "derby":
                 hashes = new DerbyHashStorage("hashes");
                 break;
+            case "extsort":
+                hashes = new ExternalSortHashStorage("hashes", RUN_SIZE, THREADS);
+                break;
             default:
                 throw new IllegalStateException("Unknown storage " + Main.STORAGE);
         }
     }
 
     private void run(String path) {
+        if (!REPORT.isEmpty() && !REPORT.equals("json") && !REPORT.equals("csv")) {
+            throw new IllegalStateException("Unknown report format " + REPORT);
+        }
+
+        File root = new File(path);
+        counters = new Counters(root.toPath(), SUBTREE_DEPTH);
+
         createStorages();
 
         System.out.println("Running with " + THREADS + " threads");
@@ -79,13 +104,95 @@ public class Main {
         firstPoll = System.nanoTime();
 
         ForkJoinPool fjp = new ForkJoinPool(THREADS);
-        fjp.invoke(new WalkTask(new File(path).toPath(), hashes, counters));
+
+        MetricsServer metrics = null;
+        if (METRICS_PORT > 0) {
+            metrics = new MetricsServer(METRICS_PORT, counters, fjp, firstPoll, hashes.isDeferred());
+        }
+
+        if (root.isFile()) {
+            fjp.invoke(WalkTask.newFileTask(root.toPath(), root.length(), hashes, counters));
+        } else {
+            fjp.invoke(new WalkTask(root.toPath(), hashes, counters));
+        }
 
         poller.shutdownNow();
 
+        UniqueTotals totals;
+        try {
+            totals = hashes.finish();
+        } catch (IllegalStateException e) {
+            System.err.println("ERROR: " + e.getMessage() + (e.getCause() != null ? ": " + e.getCause() : ""));
+            if (metrics != null) {
+                metrics.stop();
+            }
+            System.exit(1);
+            return;
+        }
+        if (totals != null) {
+            counters.dedupData.set(totals.data);
+            counters.dedupCompressData.set(totals.compressData);
+            counters.uniqueBlocks.add(totals.blocks);
+        }
+        finished = true;
+
         System.out.println("FINAL RESULT:");
         System.out.println(path + ", using " + BLOCK_SIZE + " KB blocks");
         printProgress();
+
+        if (DO_DEDUP) {
+            RefCountHistogram histogram = hashes.histogram();
+            if (histogram != null) {
+                printRefCounts(histogram);
+            }
+        }
+
+        if (!REPORT.isEmpty()) {
+            try {
+                new Report(path, counters, !hashes.isDeferred()).write(REPORT, Paths.get(REPORT_FILE));
+                System.out.println("Report written to " + REPORT_FILE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (metrics != null) {
+            metrics.stop();
+        }
+    }
+
+    private void printRefCounts(RefCountHistogram histogram) {
+        long totalHashes = Math.max(1, histogram.totalHashes());
+        long totalRefs = Math.max(1, histogram.totalRefs());
+
+        System.out.println("REFERENCES PER BLOCK:");
+        System.out.printf("%15s %26s %26s\n", "refs", "unique blocks", "referenced blocks");
+        for (int b = 0; b < histogram.buckets(); b++) {
+            long lower = histogram.lowerBound(b);
+            long upper = histogram.upperBound(b);
+            long blocks = histogram.hashes(b);
+            long refs = histogram.refs(b);
+            System.out.printf("%15s %,17d (%5.1f%%) %,17d (%5.1f%%)\n",
+                    (lower == upper) ? String.valueOf(lower) : lower + "-" + upper,
+                    blocks,
+                    blocks * 100.0 / totalHashes,
+                    refs,
+                    refs * 100.0 / totalRefs
+            );
+        }
+        System.out.println();
+
+        final int M = 1024 * 1024;
+
+        System.out.printf("DEDUP TABLE:    %,d entries\n", histogram.totalHashes());
+        for (int entrySize : DDT_ENTRY_SIZES) {
+            System.out.printf("                %,d MB at %d bytes/entry\n",
+                    histogram.totalHashes() * entrySize / M,
+                    entrySize
+            );
+        }
+        System.out.println();
+        System.out.flush();
     }
 
     private void printProgress() {
@@ -98,6 +205,7 @@ public class Main {
         long compressedData = counters.compressedData.get();
         long dedupData = counters.dedupData.get();
         long dedupCompressData = counters.dedupCompressData.get();
+        boolean dedupPending = hashes.isDeferred() && !finished;
 
         // Avoid division by zero:
         if (inputData == 0)         inputData = 1;
@@ -129,7 +237,11 @@ public class Main {
             );
         }
 
-        if (DO_DEDUP) {
+        if (DO_DEDUP && dedupPending) {
+            System.out.println("DEDUP:          pending, resolved after the scan completes");
+        }
+
+        if (DO_DEDUP && !dedupPending) {
             System.out.printf("DEDUP:          %5.3fx increase, %,d MB ------(dedup)-------> %,d MB\n",
                     inputData * 1.0 / dedupData,
                     inputData / M,
@@ -137,7 +249,7 @@ public class Main {
             );
         }
 
-        if (DO_COMPRESS && DO_DEDUP) {
+        if (DO_COMPRESS && DO_DEDUP && !dedupPending) {
             System.out.printf("DEDUP+COMPRESS: %5.3fx increase, %,d MB ------(dedup)-------> %,d MB --(block-compress)--> %,d MB\n",
                     inputData * 1.0 / dedupCompressData,
                     inputData / M,
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the live counters as Prometheus text metrics on the loopback interface.
+ */
+public class MetricsServer {
+
+    private final HttpServer server;
+    private final Counters counters;
+    private final ForkJoinPool pool;
+    private final long startNanos;
+    private final boolean deferredStorage;
+
+    /**
+     * @param deferredStorage whether storage resolves hashes only after the scan;
+     *                        its size and unique bytes are not exported then
+     */
+    public MetricsServer(int port, Counters counters, ForkJoinPool pool, long startNanos, boolean deferredStorage) {
+        this.counters = counters;
+        this.pool = pool;
+        this.startNanos = startNanos;
+        this.deferredStorage = deferredStorage;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        server.createContext("/metrics", this::handle);
+        server.start();
+        System.err.println("Serving metrics @ http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private String render() {
+        StringBuilder sb = new StringBuilder();
+
+        double elapsed = (System.nanoTime() - startNanos) * 1.0 / TimeUnit.SECONDS.toNanos(1);
+        long inputData = counters.inputData.get();
+
+        gauge(sb, "dedup_elapsed_seconds", "Time since the scan started", elapsed);
+        gauge(sb, "dedup_throughput_bytes_per_second", "Average input throughput", inputData / Math.max(elapsed, 1e-9));
+
+        counter(sb, "dedup_input_bytes_total", "Bytes read and processed", inputData);
+        counter(sb, "dedup_queued_bytes_total", "Bytes discovered by the walk", counters.queuedData.get());
+        counter(sb, "dedup_compressed_bytes_total", "Bytes after block compression", counters.compressedData.get());
+        if (!deferredStorage) {
+            counter(sb, "dedup_unique_bytes_total", "Bytes after dedup", counters.dedupData.get());
+            counter(sb, "dedup_unique_compressed_bytes_total", "Bytes after dedup and block compression", counters.dedupCompressData.get());
+        }
+
+        counter(sb, "dedup_dirs_queued_total", "Directories discovered", counters.queuedDirs.get());
+        counter(sb, "dedup_dirs_processed_total", "Directories completed", counters.processedDirs.get());
+        counter(sb, "dedup_files_queued_total", "Files discovered", counters.queuedFiles.get());
+        counter(sb, "dedup_files_processed_total", "Files completed", counters.processedFiles.get());
+
+        gauge(sb, "dedup_files_pending", "Files discovered, but not completed yet",
+                counters.queuedFiles.get() - counters.processedFiles.get());
+        gauge(sb, "dedup_pool_queued_tasks", "Tasks waiting in the worker queues", pool.getQueuedTaskCount());
+        gauge(sb, "dedup_pool_active_threads", "Workers running tasks", pool.getActiveThreadCount());
+        if (!deferredStorage) {
+            gauge(sb, "dedup_storage_hashes", "Unique hashes in storage", counters.uniqueBlocks.sum());
+        }
+
+        if (Main.TIMINGS) {
+            header(sb, "dedup_stage_seconds_total", "Time spent in pipeline stage, summed over threads", "counter");
+            stage(sb, "read", counters.readNanos.sum());
+            stage(sb, "compress", counters.compressNanos.sum());
+            stage(sb, "hash", counters.hashNanos.sum());
+            stage(sb, "store", counters.storeNanos.sum());
+        }
+
+        if (!counters.subtrees().isEmpty()) {
+            header(sb, "dedup_subtree_input_bytes_total", "Bytes processed in subtree", "counter");
+            for (Counters.Subtree s : counters.subtrees()) {
+                sb.append("dedup_subtree_input_bytes_total{subtree=\"").append(label(s.name)).append("\"} ")
+                        .append(s.inputData.sum()).append('\n');
+            }
+            header(sb, "dedup_subtree_compressed_bytes_total", "Bytes after block compression in subtree", "counter");
+            for (Counters.Subtree s : counters.subtrees()) {
+                sb.append("dedup_subtree_compressed_bytes_total{subtree=\"").append(label(s.name)).append("\"} ")
+                        .append(s.compressedData.sum()).append('\n');
+            }
+            if (!deferredStorage) {
+                header(sb, "dedup_subtree_unique_bytes_total", "Bytes first seen in subtree", "counter");
+                for (Counters.Subtree s : counters.subtrees()) {
+                    sb.append("dedup_subtree_unique_bytes_total{subtree=\"").append(label(s.name)).append("\"} ")
+                            .append(s.dedupData.sum()).append('\n');
+                }
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void stage(StringBuilder sb, String stage, long nanos) {
+        sb.append("dedup_stage_seconds_total{stage=\"").append(stage).append("\"} ")
+                .append(nanos * 1.0 / TimeUnit.SECONDS.toNanos(1)).append('\n');
+    }
+
+    private static String label(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -18,14 +18,20 @@ package net.shipilev.dedup;
 import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
 import net.shipilev.dedup.storage.HashStorage;
+import net.shipilev.dedup.streams.BoundedInputStream;
 import net.shipilev.dedup.streams.ThreadLocalByteArray;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
 
 public class ProcessTask extends RecursiveAction {
@@ -64,57 +70,168 @@ public class ProcessTask extends RecursiveAction {
 
     @Override
     protected void compute() {
-        int blockSize = Main.BLOCK_SIZE * 1024;
-
         File file = path.toFile();
+        long length = file.length();
+        Counters.Subtree subtree = counters.subtree(path);
+
+        // Huge files, e.g. raw disk images, are processed in block-aligned ranges in parallel.
+        long blockSize = Main.BLOCK_SIZE * 1024L;
+        long splitSize = Math.max(1, Main.SPLIT_SIZE * 1024L * 1024L / blockSize) * blockSize;
+        if (Main.SPLIT_SIZE > 0 && length > splitSize) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (long off = 0; off < length; off += splitSize) {
+                tasks.add(new RangeTask(path, off, Math.min(splitSize, length - off), hashes, counters, subtree).fork());
+            }
+            Throwable failure = null;
+            for (ForkJoinTask<?> task : tasks) {
+                task.quietlyJoin();
+                if (task.isCompletedAbnormally() && failure == null) {
+                    failure = task.getException();
+                }
+            }
+            if (failure != null) {
+                failure.printStackTrace();
+                return;
+            }
+            counters.fileProcessed(subtree);
+            return;
+        }
+
         try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] readBuf = selectBuffer(file.length());
+            process(fis, length, hashes, counters, subtree);
+            counters.fileProcessed(subtree);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            int read;
-            while ((read = fis.read(readBuf)) != -1) {
-                int bufCount = (read % blockSize == 0) ?
-                        (read / blockSize) :
-                        (read / blockSize) + 1;
+    /**
+     * Cuts the stream into blocks, and accounts them.
+     *
+     * @param is stream to process
+     * @param expectedSize expected stream size, used to pick the read buffer
+     * @param hashes hash storage
+     * @param counters counters to update
+     * @param subtree subtree counters to update, or null
+     * @throws IOException if stream fails
+     */
+    static void process(InputStream is, long expectedSize, HashStorage hashes, Counters counters, Counters.Subtree subtree) throws IOException {
+        int blockSize = Main.BLOCK_SIZE * 1024;
 
-                int[] sizes = new int[bufCount];
-                CompressTask[] cts = new CompressTask[bufCount];
-                HashTask[] hts = new HashTask[bufCount];
+        byte[] readBuf = selectBuffer(expectedSize);
 
-                for (int b = 0; b < bufCount; b++) {
-                    int start = b * blockSize;
-                    int size = Math.min(read - start, blockSize);
+        int read;
+        long readStart = Main.TIMINGS ? System.nanoTime() : 0;
+        while ((read = readFully(is, readBuf)) > 0) {
+            if (Main.TIMINGS) {
+                counters.readNanos.add(System.nanoTime() - readStart);
+            }
 
-                    cts[b] = new CompressTask(readBuf, start, size);
-                    cts[b].fork();
+            int bufCount = (read % blockSize == 0) ?
+                    (read / blockSize) :
+                    (read / blockSize) + 1;
 
-                    hts[b] = new HashTask(readBuf, start, size);
-                    hts[b].fork();
+            int[] sizes = new int[bufCount];
+            CompressTask[] cts = new CompressTask[bufCount];
+            HashTask[] hts = new HashTask[bufCount];
 
-                    sizes[b] = size;
-                }
+            for (int b = 0; b < bufCount; b++) {
+                int start = b * blockSize;
+                int size = Math.min(read - start, blockSize);
+
+                cts[b] = new CompressTask(readBuf, start, size);
+                cts[b].fork();
 
-                for (int b = 0; b < bufCount; b++) {
-                    int size = sizes[b];
-                    counters.inputData.addAndGet(size);
+                hts[b] = new HashTask(readBuf, start, size);
+                hts[b].fork();
 
-                    cts[b].join();
-                    int compLen = cts[b].compSize();
+                sizes[b] = size;
+            }
 
-                    counters.compressedData.addAndGet(compLen);
+            long compressed = 0;
+            long dedup = 0;
+            long dedupCompressed = 0;
 
-                    hts[b].join();
-                    byte[] hash = hts[b].digest();
+            for (int b = 0; b < bufCount; b++) {
+                int size = sizes[b];
+                counters.inputData.addAndGet(size);
 
-                    if (hash != null && hashes.add(hash)) {
-                        counters.dedupData.addAndGet(size);
-                        counters.dedupCompressData.addAndGet(compLen);
-                    }
+                cts[b].join();
+                int compLen = cts[b].compSize();
+
+                counters.compressedData.addAndGet(compLen);
+                compressed += compLen;
+
+                hts[b].join();
+                byte[] hash = hts[b].digest();
+
+                long storeStart = Main.TIMINGS ? System.nanoTime() : 0;
+                if (hash != null && hashes.add(hash, size, compLen)) {
+                    counters.dedupData.addAndGet(size);
+                    counters.dedupCompressData.addAndGet(compLen);
+                    counters.uniqueBlocks.increment();
+                    dedup += size;
+                    dedupCompressed += compLen;
+                }
+
+                if (Main.TIMINGS) {
+                    counters.storeNanos.add(System.nanoTime() - storeStart);
+                    counters.compressNanos.add(cts[b].nanos);
+                    counters.hashNanos.add(hts[b].nanos);
                 }
             }
 
-            counters.processedFiles.incrementAndGet();
-        } catch (IOException e) {
-            e.printStackTrace();
+            // Subtree totals are updated once per buffer, not to add per-block costs.
+            if (subtree != null) {
+                subtree.add(read, compressed, dedup, dedupCompressed);
+            }
+
+            readStart = Main.TIMINGS ? System.nanoTime() : 0;
+        }
+    }
+
+    /**
+     * Fills the buffer, unless the stream ends first.
+     * Archive streams return short reads, which would otherwise cut the blocks short.
+     */
+    private static int readFully(InputStream is, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int read = is.read(buf, total, buf.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    static class RangeTask extends RecursiveAction {
+        private final Path path;
+        private final long offset;
+        private final long length;
+        private final HashStorage hashes;
+        private final Counters counters;
+        private final Counters.Subtree subtree;
+
+        public RangeTask(Path path, long offset, long length, HashStorage hashes, Counters counters, Counters.Subtree subtree) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.hashes = hashes;
+            this.counters = counters;
+            this.subtree = subtree;
+        }
+
+        @Override
+        protected void compute() {
+            try (FileInputStream fis = new FileInputStream(path.toFile())) {
+                fis.getChannel().position(offset);
+                process(new BoundedInputStream(fis, length), length, hashes, counters, subtree);
+            } catch (IOException e) {
+                // Parent reports it, and does not count the file as processed.
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
@@ -127,6 +244,7 @@ public class ProcessTask extends RecursiveAction {
         private final int start;
         private final int size;
         int compSize;
+        long nanos;
 
         public CompressTask(byte[] buf, int start, int size) {
             this.buf = buf;
@@ -136,6 +254,7 @@ public class ProcessTask extends RecursiveAction {
 
         @Override
         protected void compute() {
+            long startTime = Main.TIMINGS ? System.nanoTime() : 0;
             if (Main.DO_COMPRESS) {
                 LZ4Compressor lz4 = FACTORY.fastCompressor();
                 byte[] compBlock = COMP_BUFS.get();
@@ -143,6 +262,9 @@ public class ProcessTask extends RecursiveAction {
             } else {
                 compSize = size;
             }
+            if (Main.TIMINGS) {
+                nanos = System.nanoTime() - startTime;
+            }
         }
 
         public int compSize() {
@@ -164,6 +286,7 @@ public class ProcessTask extends RecursiveAction {
         private final int start;
         private final int size;
         byte[] digest;
+        long nanos;
 
         public HashTask(byte[] buf, int start, int size) {
             this.buf = buf;
@@ -173,12 +296,16 @@ public class ProcessTask extends RecursiveAction {
 
         @Override
         protected void compute() {
+            long startTime = Main.TIMINGS ? System.nanoTime() : 0;
             if (Main.DO_DEDUP) {
                 MessageDigest md = MDS.get();
                 md.reset();
                 md.update(buf, start, size);
                 digest = md.digest();
             }
+            if (Main.TIMINGS) {
+                nanos = System.nanoTime() - startTime;
+            }
         }
 
         public byte[] digest() {
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes the final result, with per-subtree breakdown, in machine-readable form.
+ */
+public class Report {
+
+    private final String path;
+    private final Counters counters;
+    private final boolean subtreeDedup;
+
+    /**
+     * @param path scanned path
+     * @param counters final counters
+     * @param subtreeDedup whether subtree dedup numbers are known; deferred storages do not have them
+     */
+    public Report(String path, Counters counters, boolean subtreeDedup) {
+        this.path = path;
+        this.counters = counters;
+        this.subtreeDedup = subtreeDedup;
+    }
+
+    public void write(String format, Path file) throws IOException {
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            switch (format) {
+                case "json":
+                    writeJson(pw);
+                    break;
+                case "csv":
+                    writeCsv(pw);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown report format " + format);
+            }
+        }
+    }
+
+    private List<Counters.Subtree> sortedSubtrees() {
+        List<Counters.Subtree> list = new ArrayList<>(counters.subtrees());
+        list.sort(Comparator.comparing(s -> s.name));
+        return list;
+    }
+
+    private void writeJson(PrintWriter pw) {
+        pw.println("{");
+        pw.println("  \"path\": " + jsonString(path) + ",");
+        pw.println("  \"blockSize\": " + Main.BLOCK_SIZE * 1024L + ",");
+        pw.println("  \"total\": {");
+        pw.println("    \"files\": " + counters.processedFiles.get() + ",");
+        pw.println("    \"inputData\": " + counters.inputData.get() + ",");
+        pw.println("    \"compressedData\": " + counters.compressedData.get() + ",");
+        pw.println("    \"dedupData\": " + counters.dedupData.get() + ",");
+        pw.println("    \"dedupCompressData\": " + counters.dedupCompressData.get() + ",");
+        pw.println("    \"uniqueBlocks\": " + counters.uniqueBlocks.sum());
+        pw.println("  },");
+        pw.println("  \"subtrees\": [");
+        List<Counters.Subtree> subtrees = sortedSubtrees();
+        for (int i = 0; i < subtrees.size(); i++) {
+            Counters.Subtree s = subtrees.get(i);
+            pw.println("    {");
+            pw.println("      \"subtree\": " + jsonString(s.name) + ",");
+            pw.println("      \"files\": " + s.files.sum() + ",");
+            pw.println("      \"inputData\": " + s.inputData.sum() + ",");
+            pw.println("      \"compressedData\": " + s.compressedData.sum() + ",");
+            pw.println("      \"dedupData\": " + (subtreeDedup ? s.dedupData.sum() : "null") + ",");
+            pw.println("      \"dedupCompressData\": " + (subtreeDedup ? s.dedupCompressData.sum() : "null"));
+            pw.println((i < subtrees.size() - 1) ? "    }," : "    }");
+        }
+        pw.println("  ]");
+        pw.println("}");
+    }
+
+    // Unique blocks are only known for the whole tree; subtree rows leave them empty.
+    private void writeCsv(PrintWriter pw) {
+        pw.println("kind,subtree,files,inputData,compressedData,dedupData,dedupCompressData,uniqueBlocks");
+        pw.println("total," + csvString(path) + "," +
+                counters.processedFiles.get() + "," +
+                counters.inputData.get() + "," +
+                counters.compressedData.get() + "," +
+                counters.dedupData.get() + "," +
+                counters.dedupCompressData.get() + "," +
+                counters.uniqueBlocks.sum());
+        for (Counters.Subtree s : sortedSubtrees()) {
+            pw.println("subtree," + csvString(s.name) + "," +
+                    s.files.sum() + "," +
+                    s.inputData.sum() + "," +
+                    s.compressedData.sum() + "," +
+                    (subtreeDedup ? s.dedupData.sum() : "") + "," +
+                    (subtreeDedup ? s.dedupCompressData.sum() : "") + ",");
+        }
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String csvString(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup;
+
+import net.shipilev.dedup.storage.HashStorage;
+import net.shipilev.dedup.streams.TarReader;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Processes the files inside the tar archive, possibly gzip-ed, in a single sequential read.
+ * Tar has no index, so members are processed one after another; blocks within the member
+ * are still compressed and hashed in parallel.
+ */
+public class TarProcessTask extends RecursiveAction {
+    private static final int BUF_SIZE = 1 << 16;
+
+    private final Path path;
+    private final boolean gzip;
+    private final HashStorage hashes;
+    private final Counters counters;
+
+    public TarProcessTask(Path path, boolean gzip, HashStorage hashes, Counters counters) {
+        this.path = path;
+        this.gzip = gzip;
+        this.hashes = hashes;
+        this.counters = counters;
+    }
+
+    @Override
+    protected void compute() {
+        try (InputStream fis = new BufferedInputStream(new FileInputStream(path.toFile()), BUF_SIZE);
+             InputStream is = gzip ? new GZIPInputStream(fis, BUF_SIZE) : fis) {
+            Counters.Subtree subtree = counters.subtree(path);
+            TarReader tar = new TarReader(is);
+            long size;
+            while ((size = tar.nextFile()) >= 0) {
+                counters.queuedData.addAndGet(size);
+                counters.queuedFiles.incrementAndGet();
+                ProcessTask.process(tar.entryStream(), size, hashes, counters, subtree);
+                counters.fileProcessed(subtree);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading " + path);
+            e.printStackTrace();
+        }
+    }
+}
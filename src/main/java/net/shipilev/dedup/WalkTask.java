@@ -53,9 +53,7 @@ public class WalkTask extends RecursiveAction {
                     tasks.add(new WalkTask(p, hashes, counters).fork());
                 }
                 if (bfa.isRegularFile()) {
-                    counters.queuedData.addAndGet(bfa.size());
-                    counters.queuedFiles.incrementAndGet();
-                    tasks.add(new ProcessTask(p, hashes, counters).fork());
+                    tasks.add(newFileTask(p, bfa.size(), hashes, counters).fork());
                 }
             }
             for (ForkJoinTask<?> task : tasks) {
@@ -66,4 +64,27 @@ public class WalkTask extends RecursiveAction {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Creates the task for the regular file. Archives are looked into, if requested;
+     * their members are queued once discovered.
+     */
+    public static RecursiveAction newFileTask(Path p, long size, HashStorage hashes, Counters counters) {
+        if (Main.SCAN_ARCHIVES) {
+            String name = p.getFileName().toString().toLowerCase();
+            if (name.endsWith(".zip")) {
+                return new ZipProcessTask(p, hashes, counters);
+            }
+            if (name.endsWith(".tar")) {
+                return new TarProcessTask(p, false, hashes, counters);
+            }
+            if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+                return new TarProcessTask(p, true, hashes, counters);
+            }
+        }
+
+        counters.queuedData.addAndGet(size);
+        counters.queuedFiles.incrementAndGet();
+        return new ProcessTask(p, hashes, counters);
+    }
 }
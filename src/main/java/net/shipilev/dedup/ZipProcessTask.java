@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup;
+
+import net.shipilev.dedup.storage.HashStorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Processes the files inside the zip archive. Central directory gives
+ * the offsets for all members, so those are processed in parallel.
+ */
+public class ZipProcessTask extends RecursiveAction {
+    private final Path path;
+    private final HashStorage hashes;
+    private final Counters counters;
+
+    public ZipProcessTask(Path path, HashStorage hashes, Counters counters) {
+        this.path = path;
+        this.hashes = hashes;
+        this.counters = counters;
+    }
+
+    @Override
+    protected void compute() {
+        try (ZipFile zip = new ZipFile(path.toFile())) {
+            Counters.Subtree subtree = counters.subtree(path);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                counters.queuedData.addAndGet(Math.max(0, entry.getSize()));
+                counters.queuedFiles.incrementAndGet();
+                tasks.add(new EntryTask(zip, entry, subtree).fork());
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading " + path);
+            e.printStackTrace();
+        }
+    }
+
+    class EntryTask extends RecursiveAction {
+        private final ZipFile zip;
+        private final ZipEntry entry;
+        private final Counters.Subtree subtree;
+
+        public EntryTask(ZipFile zip, ZipEntry entry, Counters.Subtree subtree) {
+            this.zip = zip;
+            this.entry = entry;
+            this.subtree = subtree;
+        }
+
+        @Override
+        protected void compute() {
+            try (InputStream is = zip.getInputStream(entry)) {
+                ProcessTask.process(is, entry.getSize(), hashes, counters, subtree);
+                counters.fileProcessed(subtree);
+            } catch (IOException e) {
+                System.err.println("Error reading " + path + "!" + entry.getName());
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -18,10 +18,11 @@ package net.shipilev.dedup.storage;
 import com.sleepycat.je.*;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 
 public class BerkeleyHashStorage implements HashStorage {
     private final Database database;
-    private final DatabaseEntry constValue;
+    private final DatabaseEntry oneValue;
 
     public BerkeleyHashStorage(String name) {
         try {
@@ -39,7 +40,7 @@ public class BerkeleyHashStorage implements HashStorage {
             dbConfig.setAllowCreate(true);
 
             database = environment.openDatabase(null, name, dbConfig);
-            constValue = new DatabaseEntry(new byte[1]);
+            oneValue = new DatabaseEntry(encode(1));
         } catch (DatabaseException e) {
             throw new IllegalStateException(e);
         }
@@ -47,13 +48,57 @@ public class BerkeleyHashStorage implements HashStorage {
     }
 
     @Override
-    public boolean add(byte[] data) {
+    public boolean add(byte[] data, int size, int compSize) {
         try {
-            OperationStatus status = database.putNoOverwrite(null, new DatabaseEntry(data), constValue);
-            return status.equals(OperationStatus.SUCCESS);
+            DatabaseEntry key = new DatabaseEntry(data);
+            DatabaseEntry value = new DatabaseEntry();
+            while (true) {
+                // RMW lock is held until the cursor closes, and serializes the concurrent updates
+                Cursor cursor = database.openCursor(null, null);
+                try {
+                    if (cursor.getSearchKey(key, value, LockMode.RMW).equals(OperationStatus.SUCCESS)) {
+                        cursor.putCurrent(new DatabaseEntry(encode(decode(value.getData()) + 1)));
+                        return false;
+                    }
+                    if (cursor.putNoOverwrite(key, oneValue).equals(OperationStatus.SUCCESS)) {
+                        return true;
+                    }
+                    // lost the race with another insert, count it as the repeat
+                } finally {
+                    cursor.close();
+                }
+            }
         } catch (DatabaseException e) {
             e.printStackTrace();
             return false;
         }
     }
+
+    @Override
+    public RefCountHistogram histogram() {
+        RefCountHistogram h = new RefCountHistogram();
+        try {
+            Cursor cursor = database.openCursor(null, null);
+            try {
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry value = new DatabaseEntry();
+                while (cursor.getNext(key, value, LockMode.DEFAULT).equals(OperationStatus.SUCCESS)) {
+                    h.add(decode(value.getData()), 1);
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (DatabaseException e) {
+            throw new IllegalStateException(e);
+        }
+        return h;
+    }
+
+    private static byte[] encode(long refs) {
+        return ByteBuffer.allocate(8).putLong(refs).array();
+    }
+
+    private static long decode(byte[] value) {
+        return ByteBuffer.wrap(value).getLong();
+    }
 }
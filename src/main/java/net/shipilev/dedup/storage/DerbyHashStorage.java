@@ -18,7 +18,11 @@ package net.shipilev.dedup.storage;
 import java.sql.*;
 
 public class DerbyHashStorage implements HashStorage {
+    private static final String UNIQUE_VIOLATION = "23505";
+
     private final PreparedStatement insertStmt;
+    private final PreparedStatement updateStmt;
+    private final PreparedStatement histogramStmt;
 
     public DerbyHashStorage(String dbName) {
         try {
@@ -26,10 +30,12 @@ public class DerbyHashStorage implements HashStorage {
             Connection connection = DriverManager.getConnection("jdbc:derby:" + dbName + ";create=true");
 
             Statement statement = connection.createStatement();
-            statement.execute("CREATE TABLE hashes(hash CHAR(254) FOR BIT DATA)");
+            statement.execute("CREATE TABLE hashes(hash CHAR(254) FOR BIT DATA, refs BIGINT DEFAULT 1)");
             statement.execute("CREATE UNIQUE INDEX hashI ON hashes(hash)");
 
             insertStmt = connection.prepareStatement("INSERT INTO hashes(hash) VALUES(?)");
+            updateStmt = connection.prepareStatement("UPDATE hashes SET refs = refs + 1 WHERE hash = ?");
+            histogramStmt = connection.prepareStatement("SELECT refs, COUNT(*) FROM hashes GROUP BY refs");
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
@@ -37,13 +43,43 @@ public class DerbyHashStorage implements HashStorage {
     }
 
     @Override
-    public boolean add(byte[] data) {
+    public boolean add(byte[] data, int size, int compSize) {
         try {
-            insertStmt.setBytes(1, data);
-            insertStmt.executeUpdate();
+            // Statements are shared between threads: bind and execute atomically.
+            synchronized (insertStmt) {
+                insertStmt.setBytes(1, data);
+                insertStmt.executeUpdate();
+            }
             return true;
         } catch (SQLException e) {
+            if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                addRef(data);
+            }
             return false;
         }
     }
+
+    private void addRef(byte[] data) {
+        try {
+            synchronized (updateStmt) {
+                updateStmt.setBytes(1, data);
+                updateStmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public RefCountHistogram histogram() {
+        RefCountHistogram h = new RefCountHistogram();
+        try (ResultSet rs = histogramStmt.executeQuery()) {
+            while (rs.next()) {
+                h.add(rs.getLong(1), rs.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return h;
+    }
 }
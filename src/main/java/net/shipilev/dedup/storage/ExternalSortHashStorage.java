@@ -0,0 +1,442 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup.storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deferred storage that never looks up the hashes during the scan.
+ * Every thread accumulates (hash, size, compSize) records, sorts them, and spills
+ * them as sorted run files. After the scan, runs are k-way merged to count the
+ * unique hashes. Memory is bounded by run size.
+ * Duplicates are collapsed as early as possible, carrying their reference counts.
+ *
+ * Runs are merged in groups of FAN_IN, reading every run end-to-end, until
+ * at most FAN_IN runs are left. Run files are indexed by the first hash byte,
+ * so the final merge handles every partition of the hash space in parallel.
+ * That final pass seeks at most PARTITIONS * FAN_IN times, everything else
+ * is sequential I/O.
+ */
+public class ExternalSortHashStorage implements HashStorage {
+
+    private static final int PARTITIONS = 256;
+    private static final int FAN_IN = 64;
+    private static final int IO_BUF_SIZE = 64 * 1024;
+
+    // Record is: hash, int size, int compSize, long refs.
+    private static final int RECORD_TAIL = 4 + 4 + 8;
+
+    private static final Comparator<Record> RECORD_ORDER = (a, b) -> compare(a.digest, b.digest);
+
+    private final File dir;
+    private final int runSize;
+    private final int threads;
+
+    private final ThreadLocal<RunBuffer> buffers;
+    private final Queue<RunBuffer> allBuffers = new ConcurrentLinkedQueue<>();
+    private final Queue<Run> runs = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger fileIds = new AtomicInteger();
+    private final RefCountHistogram histogram = new RefCountHistogram();
+
+    private volatile IOException failure;
+
+    public ExternalSortHashStorage(String name, int runSize, int threads) {
+        dir = new File(name);
+        boolean isCreated = dir.mkdirs();
+        if (!isCreated) {
+            System.err.println("WARNING: " + name + " already exists, did you forget to remove previous runs?\n" +
+                    "WARNING: This might interfere with your results. Please proceed only if you know what you're doing.");
+        }
+        this.runSize = runSize;
+        this.threads = threads;
+        this.buffers = ThreadLocal.withInitial(() -> {
+            RunBuffer b = new RunBuffer(runSize);
+            allBuffers.add(b);
+            return b;
+        });
+        System.err.println("Using external sort datastorage @ " + name + ", " + runSize + " hashes per run");
+    }
+
+    @Override
+    public boolean add(byte[] data, int size, int compSize) {
+        if (failure != null) {
+            // Spilling failed already, the result is lost anyway: do not fill up the buffers.
+            return false;
+        }
+        RunBuffer b = buffers.get();
+        b.records[b.count++] = new Record(data, size, compSize);
+        if (b.count == runSize) {
+            spill(b);
+        }
+        return false;
+    }
+
+    @Override
+    public RefCountHistogram histogram() {
+        return histogram;
+    }
+
+    @Override
+    public boolean isDeferred() {
+        return true;
+    }
+
+    @Override
+    public UniqueTotals finish() {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (RunBuffer b : allBuffers) {
+                if (b.count > 0) {
+                    spill(b);
+                }
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Cannot write sorted runs to " + dir, failure);
+            }
+
+            List<Run> current = new ArrayList<>(runs);
+            System.err.println("Merging " + current.size() + " sorted runs");
+
+            // Collapse the runs in groups until the final merge is narrow enough.
+            // Every pass reads the runs end-to-end, and groups are merged in parallel.
+            while (current.size() > FAN_IN) {
+                List<ForkJoinTask<Run>> tasks = new ArrayList<>();
+                for (int i = 0; i < current.size(); i += FAN_IN) {
+                    List<Run> group = current.subList(i, Math.min(i + FAN_IN, current.size()));
+                    tasks.add(pool.submit(() -> mergeRuns(group)));
+                }
+                List<Run> next = new ArrayList<>();
+                for (ForkJoinTask<Run> task : tasks) {
+                    next.add(task.join());
+                }
+                current = next;
+            }
+
+            // Final merge is split by partition. It reads at most FAN_IN slices per partition,
+            // so the number of seeks is bounded regardless of the data size.
+            List<Run> last = current;
+            List<ForkJoinTask<UniqueTotals>> tasks = new ArrayList<>();
+            for (int p = 0; p < PARTITIONS; p++) {
+                final int partition = p;
+                tasks.add(pool.submit(() -> mergePartition(last, partition)));
+            }
+
+            UniqueTotals totals = UniqueTotals.EMPTY;
+            for (ForkJoinTask<UniqueTotals> task : tasks) {
+                totals = totals.plus(task.join());
+            }
+            return totals;
+        } finally {
+            pool.shutdown();
+            cleanup();
+        }
+    }
+
+    private void spill(RunBuffer b) {
+        Record[] records = b.records;
+        int count = b.count;
+        Arrays.sort(records, 0, count, RECORD_ORDER);
+
+        try {
+            Run run;
+            try (RunWriter w = new RunWriter("run-")) {
+                int i = 0;
+                while (i < count) {
+                    Record r = records[i];
+                    int j = i + 1;
+                    while (j < count && compare(r.digest, records[j].digest) == 0) {
+                        j++;
+                    }
+                    w.write(r.digest, r.size, r.compSize, j - i);
+                    i = j;
+                }
+                run = w.run();
+            }
+            runs.add(run);
+        } catch (IOException e) {
+            // Do not fail the scan from the worker thread, report it in finish().
+            if (failure == null) {
+                failure = e;
+                System.err.println("ERROR: Cannot write sorted run to " + dir + ": " + e);
+            }
+        }
+
+        Arrays.fill(records, 0, count, null);
+        b.count = 0;
+    }
+
+    private Run mergeRuns(List<Run> group) {
+        if (group.size() == 1) {
+            return group.get(0);
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        for (Run run : group) {
+            segments.add(new Segment(run.file, run.digestLen, 0, run.count()));
+        }
+
+        try {
+            Run merged;
+            try (RunWriter w = new RunWriter("merge-")) {
+                merge(segments, w::write);
+                merged = w.run();
+            }
+            for (Run run : group) {
+                run.file.delete();
+            }
+            return merged;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private UniqueTotals mergePartition(List<Run> runs, int partition) {
+        List<Segment> segments = new ArrayList<>();
+        for (Run run : runs) {
+            long from = run.starts[partition];
+            long count = run.starts[partition + 1] - from;
+            if (count > 0) {
+                segments.add(new Segment(run.file, run.digestLen, from, count));
+            }
+        }
+
+        try {
+            long[] totals = new long[3];
+            RefCountHistogram h = new RefCountHistogram();
+            merge(segments, (digest, size, compSize, refs) -> {
+                totals[0]++;
+                totals[1] += size;
+                totals[2] += compSize;
+                h.add(refs, 1);
+            });
+            synchronized (histogram) {
+                histogram.add(h);
+            }
+            return new UniqueTotals(totals[0], totals[1], totals[2]);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void cleanup() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("run-") || name.startsWith("merge-"));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Merges the sorted segments, and feeds every distinct hash with its total references to sink.
+     */
+    private static void merge(List<Segment> segments, Sink sink) throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(segments.size(), (a, b) -> compare(a.digest, b.digest));
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            for (Segment s : segments) {
+                Cursor c = new Cursor(s);
+                cursors.add(c);
+                if (c.advance()) {
+                    queue.add(c);
+                }
+            }
+
+            byte[] last = new byte[segments.get(0).digestLen];
+            int lastSize = 0;
+            int lastCompSize = 0;
+            long lastRefs = 0;
+            while (!queue.isEmpty()) {
+                Cursor c = queue.poll();
+                if (lastRefs != 0 && compare(last, c.digest) == 0) {
+                    lastRefs += c.refs;
+                } else {
+                    if (lastRefs != 0) {
+                        sink.accept(last, lastSize, lastCompSize, lastRefs);
+                    }
+                    System.arraycopy(c.digest, 0, last, 0, last.length);
+                    lastSize = c.size;
+                    lastCompSize = c.compSize;
+                    lastRefs = c.refs;
+                }
+                if (c.advance()) {
+                    queue.add(c);
+                }
+            }
+            if (lastRefs != 0) {
+                sink.accept(last, lastSize, lastCompSize, lastRefs);
+            }
+        } finally {
+            for (Cursor c : cursors) {
+                c.in.close();
+            }
+        }
+    }
+
+    private static void write(DataOutputStream dos, byte[] digest, int size, int compSize, long refs) throws IOException {
+        dos.write(digest);
+        dos.writeInt(size);
+        dos.writeInt(compSize);
+        dos.writeLong(refs);
+    }
+
+    private static DataOutputStream newOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUF_SIZE));
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private interface Sink {
+        void accept(byte[] digest, int size, int compSize, long refs) throws IOException;
+    }
+
+    private static class Record {
+        final byte[] digest;
+        final int size;
+        final int compSize;
+
+        Record(byte[] digest, int size, int compSize) {
+            this.digest = digest;
+            this.size = size;
+            this.compSize = compSize;
+        }
+    }
+
+    private static class RunBuffer {
+        final Record[] records;
+        int count;
+
+        RunBuffer(int size) {
+            records = new Record[size];
+        }
+    }
+
+    private static class Run {
+        final File file;
+        final int digestLen;
+        final long[] starts;
+
+        Run(File file, int digestLen, long[] starts) {
+            this.file = file;
+            this.digestLen = digestLen;
+            this.starts = starts;
+        }
+
+        long count() {
+            return starts[PARTITIONS];
+        }
+    }
+
+    /**
+     * Writes the sorted records, and indexes them by the first hash byte.
+     */
+    private class RunWriter implements Closeable {
+        final File file;
+        final DataOutputStream dos;
+        final long[] starts = new long[PARTITIONS + 1];
+        int partition;
+        long written;
+        int digestLen;
+
+        RunWriter(String prefix) throws IOException {
+            file = new File(dir, prefix + fileIds.incrementAndGet());
+            dos = newOutput(file);
+        }
+
+        void write(byte[] digest, int size, int compSize, long refs) throws IOException {
+            int p = digest[0] & 0xFF;
+            while (partition <= p) {
+                starts[partition++] = written;
+            }
+            ExternalSortHashStorage.write(dos, digest, size, compSize, refs);
+            written++;
+            digestLen = digest.length;
+        }
+
+        Run run() {
+            while (partition <= PARTITIONS) {
+                starts[partition++] = written;
+            }
+            return new Run(file, digestLen, starts);
+        }
+
+        @Override
+        public void close() throws IOException {
+            dos.close();
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final int digestLen;
+        final long from;
+        final long count;
+
+        Segment(File file, int digestLen, long from, long count) {
+            this.file = file;
+            this.digestLen = digestLen;
+            this.from = from;
+            this.count = count;
+        }
+    }
+
+    private static class Cursor {
+        final DataInputStream in;
+        final byte[] digest;
+        long remaining;
+        int size;
+        int compSize;
+        long refs;
+
+        Cursor(Segment s) throws IOException {
+            FileInputStream fis = new FileInputStream(s.file);
+            fis.getChannel().position(s.from * (s.digestLen + RECORD_TAIL));
+            in = new DataInputStream(new BufferedInputStream(fis, IO_BUF_SIZE));
+            digest = new byte[s.digestLen];
+            remaining = s.count;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            in.readFully(digest);
+            size = in.readInt();
+            compSize = in.readInt();
+            refs = in.readLong();
+            remaining--;
+            return true;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package net.shipilev.dedup.storage;
 
+import org.h2.api.ErrorCode;
 import org.h2.jdbcx.JdbcConnectionPool;
 
 import java.sql.*;
@@ -30,7 +31,7 @@ public class H2HashStorage implements HashStorage {
             Connection conn = cp.getConnection();
 
             Statement statement = conn.createStatement();
-            statement.execute("CREATE TABLE hashes(hash BINARY(256))");
+            statement.execute("CREATE TABLE hashes(hash BINARY(256), refs BIGINT DEFAULT 1)");
             statement.execute("CREATE UNIQUE INDEX hashI ON hashes(hash)");
         } catch (Exception e) {
             throw new IllegalStateException(e);
@@ -39,14 +40,40 @@ public class H2HashStorage implements HashStorage {
     }
 
     @Override
-    public boolean add(byte[] data) {
+    public boolean add(byte[] data, int size, int compSize) {
         try (Connection connection = cp.getConnection()) {
-            PreparedStatement insertStmt = connection.prepareStatement("INSERT INTO hashes(hash) VALUES(?)");
-            insertStmt.setBytes(1, data);
-            insertStmt.executeUpdate();
-            return true;
+            try (PreparedStatement insertStmt = connection.prepareStatement("INSERT INTO hashes(hash) VALUES(?)")) {
+                insertStmt.setBytes(1, data);
+                insertStmt.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1) {
+                    throw e;
+                }
+            }
+            try (PreparedStatement updateStmt = connection.prepareStatement("UPDATE hashes SET refs = refs + 1 WHERE hash = ?")) {
+                updateStmt.setBytes(1, data);
+                updateStmt.executeUpdate();
+            }
+            return false;
         } catch (SQLException e) {
+            e.printStackTrace();
             return false;
         }
     }
+
+    @Override
+    public RefCountHistogram histogram() {
+        RefCountHistogram h = new RefCountHistogram();
+        try (Connection connection = cp.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT refs, COUNT(*) FROM hashes GROUP BY refs")) {
+            while (rs.next()) {
+                h.add(rs.getLong(1), rs.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return h;
+    }
 }
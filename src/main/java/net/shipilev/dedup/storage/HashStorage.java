@@ -18,12 +18,46 @@ package net.shipilev.dedup.storage;
 public interface HashStorage {
 
     /**
-     * Adds hash to storage.
+     * Adds hash to storage, along with the sizes of the block it was computed for.
      * Behavior of this methods reflects the behavior of Set.add().
+     * Storages that track references also count every repeated add.
+     * Storages that resolve duplicates right away may ignore the sizes. Deferred
+     * storages record them and always return false, reporting the unique blocks
+     * in {@link #finish()} instead.
      *
      * @param data hash to add
-     * @return true if added, false if hash already exists
+     * @param size block size
+     * @param compSize compressed block size
+     * @return true if added, false if hash already exists, or duplicates are resolved later
      * @see java.util.Set#add(Object)
      */
-    boolean add(byte[] data);
+    boolean add(byte[] data, int size, int compSize);
+
+    /**
+     * Tells if this storage resolves duplicates only in {@link #finish()}.
+     *
+     * @return true, if storage is deferred
+     */
+    default boolean isDeferred() {
+        return false;
+    }
+
+    /**
+     * Completes the storage after all hashes are added.
+     *
+     * @return totals for unique blocks, or null if those were already reported by add()
+     */
+    default UniqueTotals finish() {
+        return null;
+    }
+
+    /**
+     * Computes the distribution of references per hash.
+     * Should be called after {@link #finish()}.
+     *
+     * @return histogram, or null if storage does not track references
+     */
+    default RefCountHistogram histogram() {
+        return null;
+    }
 }
@@ -17,20 +17,55 @@ package net.shipilev.dedup.storage;
 
 import net.shipilev.dedup.streams.ByteArrayWrapper;
 
-import java.util.Collections;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class InMemoryHashStorage implements HashStorage {
 
-    private final Set<ByteArrayWrapper> storage = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // Shared value for the hashes seen once, so singletons do not pay for the counters.
+    // The first repeat swaps in the adder, which keeps the hot duplicates, e.g. zero blocks,
+    // from contending on a single counter.
+    private static final Object ONE = new Object();
+
+    private final ConcurrentHashMap<ByteArrayWrapper, Object> storage = new ConcurrentHashMap<>();
 
     public InMemoryHashStorage() {
         System.err.println("Using InMemory datastorage, ConcurrentHashMap-based");
     }
 
     @Override
-    public boolean add(byte[] data) {
-        return storage.add(new ByteArrayWrapper(data));
+    public boolean add(byte[] data, int size, int compSize) {
+        ByteArrayWrapper w = new ByteArrayWrapper(data);
+        Object refs = storage.putIfAbsent(w, ONE);
+        if (refs == null) {
+            return true;
+        }
+        if (refs == ONE) {
+            refs = storage.computeIfPresent(w, (k, v) -> {
+                if (v != ONE) {
+                    return v;
+                }
+                LongAdder adder = new LongAdder();
+                adder.increment();
+                return adder;
+            });
+        }
+        ((LongAdder) refs).increment();
+        return false;
+    }
+
+    @Override
+    public RefCountHistogram histogram() {
+        RefCountHistogram h = new RefCountHistogram();
+        long singletons = 0;
+        for (Object refs : storage.values()) {
+            if (refs == ONE) {
+                singletons++;
+            } else {
+                h.add(((LongAdder) refs).sum(), 1);
+            }
+        }
+        h.add(1, singletons);
+        return h;
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup.storage;
+
+/**
+ * Distribution of references per unique hash.
+ * Buckets are power-of-two ranges: 1, 2, 3-4, 5-8, 9-16, etc.
+ */
+public class RefCountHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final long[] hashes = new long[BUCKETS];
+    private final long[] refs = new long[BUCKETS];
+
+    /**
+     * Records the hashes having the same reference count.
+     *
+     * @param refCount references per hash
+     * @param count number of hashes
+     */
+    public void add(long refCount, long count) {
+        int b = bucket(refCount);
+        hashes[b] += count;
+        refs[b] += refCount * count;
+    }
+
+    public void add(RefCountHistogram other) {
+        for (int b = 0; b < BUCKETS; b++) {
+            hashes[b] += other.hashes[b];
+            refs[b] += other.refs[b];
+        }
+    }
+
+    public int buckets() {
+        int last = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            if (hashes[b] != 0) {
+                last = b;
+            }
+        }
+        return last + 1;
+    }
+
+    public long hashes(int bucket) {
+        return hashes[bucket];
+    }
+
+    public long refs(int bucket) {
+        return refs[bucket];
+    }
+
+    public long lowerBound(int bucket) {
+        return (bucket == 0) ? 1 : (1L << (bucket - 1)) + 1;
+    }
+
+    public long upperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    public long totalHashes() {
+        long sum = 0;
+        for (long h : hashes) {
+            sum += h;
+        }
+        return sum;
+    }
+
+    public long totalRefs() {
+        long sum = 0;
+        for (long r : refs) {
+            sum += r;
+        }
+        return sum;
+    }
+
+    private static int bucket(long refCount) {
+        return (refCount <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(refCount - 1);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup.storage;
+
+/**
+ * Totals over the unique blocks, as resolved by deferred storages.
+ */
+public class UniqueTotals {
+
+    public static final UniqueTotals EMPTY = new UniqueTotals(0, 0, 0);
+
+    public final long blocks;
+    public final long data;
+    public final long compressData;
+
+    public UniqueTotals(long blocks, long data, long compressData) {
+        this.blocks = blocks;
+        this.data = data;
+        this.compressData = compressData;
+    }
+
+    public UniqueTotals plus(UniqueTotals other) {
+        return new UniqueTotals(blocks + other.blocks, data + other.data, compressData + other.compressData);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Aleksey Shipilev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shipilev.dedup.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal sequential reader for ustar/GNU/pax tar streams.
+ * Only regular file contents are exposed, everything else is skipped.
+ */
+public class TarReader {
+    private static final int RECORD = 512;
+
+    private final InputStream in;
+    private final byte[] header = new byte[RECORD];
+
+    private BoundedInputStream entry;
+    private long padding;
+
+    public TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next regular file, skipping the rest of the current one.
+     *
+     * @return file size, or -1 if there are no more files
+     * @throws IOException if stream is truncated or malformed
+     */
+    public long nextFile() throws IOException {
+        long paxSize = -1;
+        while (true) {
+            if (entry != null) {
+                skipFully(entry.remaining() + padding);
+                entry = null;
+            }
+
+            if (!readHeader()) {
+                return -1;
+            }
+
+            long size = parseNumber(124, 12);
+            byte type = header[156];
+            if (type == 'x') {
+                paxSize = parsePaxSize(size);
+                continue;
+            }
+
+            if (paxSize >= 0) {
+                size = paxSize;
+                paxSize = -1;
+            }
+
+            entry = new BoundedInputStream(in, size);
+            padding = (RECORD - size % RECORD) % RECORD;
+
+            if (type == '0' || type == 0 || type == '7') {
+                return size;
+            }
+        }
+    }
+
+    /**
+     * @return stream over the contents of current file
+     */
+    public InputStream entryStream() {
+        return entry;
+    }
+
+    private boolean readHeader() throws IOException {
+        int read = 0;
+        while (read < RECORD) {
+            int r = in.read(header, read, RECORD - read);
+            if (r == -1) {
+                if (read == 0) {
+                    // Archive without the end-of-archive marker.
+                    return false;
+                }
+                throw new EOFException("Truncated tar header");
+            }
+            read += r;
+        }
+        for (byte b : header) {
+            if (b != 0) {
+                return true;
+            }
+        }
+        // Zero record marks the end of archive.
+        return false;
+    }
+
+    private long parseNumber(int off, int len) throws IOException {
+        if ((header[off] & 0x80) != 0) {
+            // GNU base-256 encoding for large values.
+            long v = header[off] & 0x7F;
+            for (int i = 1; i < len; i++) {
+                v = (v << 8) | (header[off + i] & 0xFF);
+            }
+            return v;
+        }
+
+        long v = 0;
+        for (int i = off; i < off + len; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (v != 0) break;
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Malformed tar header");
+            }
+            v = (v << 3) | (b - '0');
+        }
+        return v;
+    }
+
+    private long parsePaxSize(long len) throws IOException {
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Malformed pax header");
+        }
+        byte[] data = new byte[(int) len];
+        int read = 0;
+        while (read < data.length) {
+            int r = in.read(data, read, data.length - read);
+            if (r == -1) {
+                throw new EOFException("Truncated pax header");
+            }
+            read += r;
+        }
+        skipFully((RECORD - len % RECORD) % RECORD);
+
+        // Records are "<length> <key>=<value>\n".
+        long size = -1;
+        for (String rec : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            int sp = rec.indexOf(' ');
+            if (sp >= 0 && rec.startsWith("size=", sp + 1)) {
+                try {
+                    size = Long.parseLong(rec.substring(sp + 1 + "size=".length()));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed pax header", e);
+                }
+                if (size < 0) {
+                    throw new IOException("Malformed pax header");
+                }
+            }
+        }
+        return size;
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Truncated tar entry");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}